@@ -0,0 +1,39 @@
+package org.quuux.boourns;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.io.File;
+
+// Headless parameter sweep, start with
+//   adb shell am start -n org.quuux.boourns/.BatchActivity --ei size 100 --ei steps 5000
+// and collect files/batch.csv from the app's data directory.  The liquid
+// takes about 2500-3000 steps to come to rest, runs that are too short
+// report a settle_step of -1.
+public class BatchActivity extends Activity {
+
+    protected static final String TAG = "BatchActivity";
+
+    @Override
+    public void onCreate(Bundle savedInstanceState)
+    {
+        super.onCreate(savedInstanceState);
+
+        final int size = getIntent().getIntExtra("size", 100);
+        final int steps = getIntent().getIntExtra("steps", 5000);
+        final File out = new File(getFilesDir(), "batch.csv");
+
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    new BatchRunner().run(BatchRunner.defaultSweep(size, steps), out);
+                    Log.d(TAG, "wrote " + out);
+                } catch (Exception e) {
+                    Log.e(TAG, "batch failed", e);
+                }
+                finish();
+            }
+        }, "BatchRunner").start();
+    }
+}
@@ -0,0 +1,241 @@
+package org.quuux.boourns;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.jbox2d.common.Vec2;
+import org.jbox2d.dynamics.Body;
+
+import android.util.Log;
+
+// Runs many headless GameWorlds with different parameters across all
+// cores and writes one csv line of metrics per run.  Every world has its
+// own seed, so a run reproduces exactly given the same parameters.
+public class BatchRunner {
+
+    private static final String TAG = "BatchRunner";
+
+    /** Mean droplet speed below which a world counts as settled */
+    public static final float SETTLE_SPEED = 0.5f;
+
+    public static class Run {
+        public final int size;
+        public final long seed;
+        public final float rad, visc;
+        public final int velIter, posIter;
+        public final int steps;
+
+        public Run(int size, long seed, float rad, float visc, int velIter, int posIter, int steps) {
+            this.size = size;
+            this.seed = seed;
+            this.rad = rad;
+            this.visc = visc;
+            this.velIter = velIter;
+            this.posIter = posIter;
+            this.steps = steps;
+        }
+    }
+
+    public static class Result {
+        public final Run run;
+
+        /** First step after which the world stayed settled, -1 if it never did */
+        public int settleStep = -1;
+        public float densityVariance;
+
+        /** Droplets and their total mass at the end of the run */
+        public int droplets;
+        public float mass;
+        public long meanTickNanos, maxTickNanos;
+
+        public Result(Run run) {
+            this.run = run;
+        }
+    }
+
+    private final int threads;
+
+    public BatchRunner() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public BatchRunner(int threads) {
+        this.threads = threads;
+    }
+
+    /** Sweeps rad, visc and the solver iterations over a few seeds. */
+    public static List<Run> defaultSweep(int size, int steps) {
+        float[] rads = { 0.4f, 0.6f, 0.8f };
+        float[] viscs = { 0.002f, 0.004f, 0.008f };
+        int[][] iters = { { GameWorld.VEL_ITER, GameWorld.POS_ITER }, { 6, 3 }, { 8, 8 } };
+        long[] seeds = { 1, 2, 3 };
+
+        List<Run> runs = new ArrayList<Run>();
+        for (float rad : rads)
+            for (float visc : viscs)
+                for (int[] iter : iters)
+                    for (long seed : seeds)
+                        runs.add(new Run(size, seed, rad, visc, iter[0], iter[1], steps));
+        return runs;
+    }
+
+    // The default ledges inside a closed box that reaches above the spawn
+    // height, so the liquid comes to rest and every run keeps its volume
+    private static final float[] CONTAINER = {
+        25f, 50f, 50f, 37.5f,
+        50f, 50f, 75f, 62.5f,
+        25f, 75f, 50f, 62.5f,
+        5f, 0f, 95f, 0f,
+        5f, 0f, 5f, 110f,
+        95f, 0f, 95f, 110f,
+        5f, 110f, 95f, 110f,
+    };
+
+    public static Level containerLevel() {
+        return new Level(CONTAINER.clone(), CONTAINER.length / 4);
+    }
+
+    public static Result simulate(Run run) {
+        GameWorld world = new GameWorld(run.size, run.seed, new Liquid(run.rad, run.visc),
+                                       run.velIter, run.posIter, containerLevel());
+        world.setRespawn(false);
+        Result result = new Result(run);
+
+        // droplets start at rest above the level, the world only counts
+        // as settled once all of them have fallen into it
+        boolean poured = false;
+
+        long total = 0;
+        for (int step = 0; step < run.steps; step++) {
+            long start = System.nanoTime();
+            world.tick(0);
+            long cost = System.nanoTime() - start;
+
+            total += cost;
+            result.maxTickNanos = Math.max(result.maxTickNanos, cost);
+
+            Body[] bodies = world.getBodies();
+            int count = world.getBodyCount();
+            if (!poured && highest(bodies, count) < world.getHeight())
+                poured = true;
+
+            if (!poured || meanSpeed(bodies, count) >= SETTLE_SPEED)
+                result.settleStep = -1;
+            else if (result.settleStep < 0)
+                result.settleStep = step;
+        }
+
+        result.meanTickNanos = run.steps > 0 ? total / run.steps : 0;
+        result.densityVariance = densityVariance(world);
+        result.droplets = world.getBodyCount();
+        result.mass = totalMass(world.getBodies(), world.getBodyCount());
+        return result;
+    }
+
+    private static float highest(Body[] bodies, int count) {
+        float y = -Float.MAX_VALUE;
+        for (int i=0; i<count; i++)
+            y = Math.max(y, bodies[i].m_sweep.c.y);
+        return y;
+    }
+
+    private static float totalMass(Body[] bodies, int count) {
+        float sum = 0;
+        for (int i=0; i<count; i++)
+            sum += bodies[i].m_mass;
+        return sum;
+    }
+
+    private static float meanSpeed(Body[] bodies, int count) {
+        float sum = 0;
+        for (int i=0; i<count; i++) {
+            Vec2 v = bodies[i].m_linearVelocity;
+            sum += (float)Math.sqrt(v.x * v.x + v.y * v.y);
+        }
+        return count > 0 ? sum / count : 0;
+    }
+
+    // Variance of the touching-neighbor count, a cheap proxy for density
+    private static float densityVariance(GameWorld world) {
+        ParticlePool particles = world.getParticles();
+        Liquid liquid = world.getLiquid();
+        int n = particles.size();
+        int[] counts = new int[n];
+
+        liquid.updateIndex(particles, world.getWidth(), world.getHeight());
+        liquid.countNeighbors(particles, world.getWidth(), world.getHeight(), counts);
+
+        float sum = 0, sumSq = 0;
+        for (int i=0; i<n; i++) {
+            sum += counts[i];
+            sumSq += counts[i] * counts[i];
+        }
+
+        if (n == 0)
+            return 0;
+
+        float mean = sum / n;
+        return sumSq / n - mean * mean;
+    }
+
+    public List<Result> run(List<Run> runs) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Result>> futures = new ArrayList<Future<Result>>();
+            for (final Run run : runs) {
+                futures.add(executor.submit(new Callable<Result>() {
+                    public Result call() {
+                        return simulate(run);
+                    }
+                }));
+            }
+
+            List<Result> results = new ArrayList<Result>();
+            for (Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void run(List<Run> runs, File out) throws InterruptedException, IOException {
+        long start = System.currentTimeMillis();
+        List<Result> results = run(runs);
+        Log.d(TAG, runs.size() + " runs on " + threads + " threads took " +
+              (System.currentTimeMillis() - start) + "ms");
+        write(results, out);
+    }
+
+    public static void write(List<Result> results, File out) throws IOException {
+        BufferedWriter writer = new BufferedWriter(new FileWriter(out));
+        try {
+            writer.write("size,seed,rad,visc,vel_iter,pos_iter,steps,settle_step,density_var," +
+                         "droplets,mass,mean_tick_us,max_tick_us\n");
+            for (Result r : results) {
+                writer.write(String.format(Locale.US, "%d,%d,%g,%g,%d,%d,%d,%d,%.4f,%d,%.2f,%d,%d\n",
+                                           r.run.size, r.run.seed, r.run.rad, r.run.visc,
+                                           r.run.velIter, r.run.posIter, r.run.steps,
+                                           r.settleStep, r.densityVariance, r.droplets, r.mass,
+                                           r.meanTickNanos / 1000, r.maxTickNanos / 1000));
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}
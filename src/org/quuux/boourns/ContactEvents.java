@@ -0,0 +1,104 @@
+package org.quuux.boourns;
+
+// Single producer, single consumer ring of droplet-edge impacts.  The
+// simulation thread records impacts, the render or audio thread drains
+// them.  Storage is preallocated primitive arrays; neither side allocates
+// or locks.  When the ring is full new impacts are dropped and counted.
+class ContactEvents {
+
+    // floats per event: x, y, impulse, energy
+    public static final int STRIDE = 4;
+
+    private final int mask;
+    private final int[] edges;
+    private final float[] data;
+
+    // head is only written by the consumer, tail only by the producer; the
+    // volatile write of tail publishes the event stored before it
+    private volatile long head, tail;
+    private volatile int dropped;
+
+    public ContactEvents(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        mask = size - 1;
+        edges = new int[size];
+        data = new float[size * STRIDE];
+    }
+
+    public int getCapacity() {
+        return edges.length;
+    }
+
+    /** Number of impacts lost to a full ring so far. */
+    public int getDropped() {
+        return dropped;
+    }
+
+    public int size() {
+        return (int)(tail - head);
+    }
+
+    // producer
+
+    public boolean record(int edge, float x, float y, float impulse, float energy) {
+        long t = tail;
+        if (t - head == edges.length) {
+            dropped++;
+            return false;
+        }
+
+        int slot = (int)t & mask;
+        edges[slot] = edge;
+        data[slot * STRIDE] = x;
+        data[slot * STRIDE + 1] = y;
+        data[slot * STRIDE + 2] = impulse;
+        data[slot * STRIDE + 3] = energy;
+
+        tail = t + 1;
+        return true;
+    }
+
+    // consumer
+
+    /**
+     * Moves up to max pending impacts into the caller's buffers, oldest
+     * first.  outData receives STRIDE floats per impact.  Returns the
+     * number of impacts moved.
+     */
+    public int drain(int[] outEdges, float[] outData, int max) {
+        long h = head;
+        int count = (int)Math.min(tail - h, Math.min(max, Math.min(outEdges.length, outData.length / STRIDE)));
+
+        for (int i=0; i<count; i++) {
+            int slot = (int)(h + i) & mask;
+            outEdges[i] = edges[slot];
+            System.arraycopy(data, slot * STRIDE, outData, i * STRIDE, STRIDE);
+        }
+
+        head = h + count;
+        return count;
+    }
+
+    /**
+     * Consumes every pending impact, adding one to counts[edge] and its
+     * energy to energy[edge].  Impacts on edges beyond the arrays are
+     * discarded.  Returns the number of impacts consumed.
+     */
+    public int aggregate(int[] counts, float[] energy) {
+        long h = head;
+        long t = tail;
+
+        for (long i = h; i < t; i++) {
+            int slot = (int)i & mask;
+            int edge = edges[slot];
+            if (edge < 0 || edge >= counts.length || edge >= energy.length)
+                continue;
+
+            counts[edge]++;
+            energy[edge] += data[slot * STRIDE + 3];
+        }
+
+        head = t;
+        return (int)(t - h);
+    }
+}
@@ -15,7 +15,10 @@ import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 import android.util.Log;
 
-import org.jbox2d.common.Vec2;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
 import org.jbox2d.dynamics.Body;
 
 class PausableThread extends Thread {
@@ -165,32 +168,6 @@ class BallItem extends Item {
     }
 }
  
-class EdgeItem extends Item {
-    private static final String TAG ="EdgeItem";
-
-    protected Vec2 a, b;
-    public EdgeItem(BodyBuffer buffer, Paint paint) {
-        super(BodyType.EDGE, buffer, paint);
-    }
-
-    public void draw(Canvas c, long elapsed) {
-        if (a == null || b == null) 
-            return;
-
-        float x1 = a.x * buffer.getScale();
-        float y1 = buffer.getHeight() - a.y * buffer.getScale();
-        float x2 = b.x * buffer.getScale();
-        float y2 = buffer.getHeight() - b.y * buffer.getScale();
-
-        c.drawLine(x1, y1, x2, y2, paint);
-    }
-
-    public void update(Vec2 a, Vec2 b) {
-        this.a = a;
-        this.b = b;
-    }
-}
-   
 class BodyBuffer {
 
     private static final String TAG = "BodyBuffer";
@@ -198,13 +175,15 @@ class BodyBuffer {
     private float scale = 10.0f;
 
     private int width, height;
-    private EdgeItem[] edges;
+    private Level level;
+    private int[] visible = new int[256];
     private BallItem[] front, back;
+    private int frontCount, backCount;
 
     private Paint ballPaint = new Paint();
     private Paint edgePaint = new Paint();
 
-    public BodyBuffer(int sizeBalls, int sizeEdges) {
+    public BodyBuffer(int sizeBalls) {
         ballPaint.setColor(Color.BLUE);
         ballPaint.setAntiAlias(true);
         ballPaint.setStrokeWidth(5);
@@ -219,8 +198,6 @@ class BodyBuffer {
 
         front = allocBalls(sizeBalls, ballPaint);
         back = allocBalls(sizeBalls, ballPaint);
-        edges = allocEdges(sizeEdges, edgePaint);
-
     }
 
     public void setSize(int width, int height) {
@@ -244,6 +221,13 @@ class BodyBuffer {
         return front.length;
     }
 
+    // Only the simulation thread touches back, so it can grow in place
+    private void growBack(int size) {
+        BallItem[] grown = allocBalls(Math.max(size, back.length * 2), ballPaint);
+        System.arraycopy(back, 0, grown, 0, back.length);
+        back = grown;
+    }
+
     public BallItem[] allocBalls(int size, Paint paint) {
         BallItem[] rv = new BallItem[size];
         
@@ -254,35 +238,48 @@ class BodyBuffer {
         return rv;
     }
 
-    public EdgeItem[] allocEdges(int size, Paint paint) {
-        EdgeItem[] rv = new EdgeItem[size];
-        
-        for (int i=0; i<size; i++) {
-            rv[i] = new EdgeItem(this, paint);
-        }
-
-        return rv;
-    }
    
     public synchronized void swap() {
         BallItem[] tmp = front;
         front = back;
         back = tmp;
+
+        int count = frontCount;
+        frontCount = backCount;
+        backCount = count;
     }
 
-    public void addEdges(Vec2[][] edges) {
-        for (int i=0; i<edges.length; i++) {
-            Vec2 a = edges[i][0];
-            Vec2 b = edges[i][1];
-            Log.d(TAG, "adding edge " + a + ", " + b);
-                this.edges[i].update(a, b);
-        }
+    public synchronized void setLevel(Level level) {
+        Log.d(TAG, "level has " + level.size() + " segments");
+        this.level = level;
     }
 
-    public void update(Body[] bodies) {
-        for (int i=0; i < back.length && i < bodies.length; i++) {
+    public void update(Body[] bodies, int count) {
+        if (count > back.length)
+            growBack(count);
+
+        for (int i=0; i < count; i++) {
             back[i].update(bodies[i]);
         }
+        backCount = count;
+    }
+
+    // Draws only the segments the grid finds inside the visible area
+    private void drawLevel(Canvas c, float offset) {
+        float x0 = -offset / scale;
+        float x1 = (width - offset) / scale;
+        float y1 = height / scale;
+
+        int count;
+        while ((count = level.getGrid().query(x0, 0, x1, y1, visible)) == visible.length)
+            visible = new int[visible.length * 2];
+
+        float[] segments = level.getSegments();
+        for (int i=0; i<count; i++) {
+            int s = 4 * visible[i];
+            c.drawLine(segments[s] * scale, height - segments[s + 1] * scale,
+                       segments[s + 2] * scale, height - segments[s + 3] * scale, edgePaint);
+        }
     }
 
     public synchronized void draw(Canvas c, long elapsed) {
@@ -296,13 +293,10 @@ class BodyBuffer {
 
         c.drawColor(Color.BLACK);
 
-        for (int i=0; i<edges.length; i++) {
-            c.save();
-            edges[i].draw(c, elapsed);
-            c.restore();
-        }
+        if (level != null)
+            drawLevel(c, width / 2 - 50 * scale);
 
-        for (int i=0; i<front.length; i++) {
+        for (int i=0; i<frontCount; i++) {
             c.save();
             front[i].draw(c, elapsed);
             c.restore();
@@ -345,18 +339,19 @@ public class DemoActivity
         private GameWorld world;
         private BodyBuffer buffer;
 
-        public SimulationThread(BodyBuffer buffer) {
+        public SimulationThread(BodyBuffer buffer, Level level) {
             super("SimulationThread", 200);
             this.buffer = buffer;
-            world = new GameWorld(buffer.getLength());
-            buffer.addEdges(world.getEdges());
+            world = new GameWorld(buffer.getLength(), System.nanoTime(), new Liquid(),
+                                  GameWorld.VEL_ITER, GameWorld.POS_ITER, level);
+            buffer.setLevel(world.getLevel());
         }
 
         public void update(long elapsed) {
             //Log.d(TAG, "update");
 
             world.tick(elapsed);
-            buffer.update(world.getBodies());
+            buffer.update(world.getBodies(), world.getBodyCount());
             buffer.swap();
         }
     }
@@ -381,14 +376,34 @@ public class DemoActivity
 
         setContentView(worldView);
 
-        buffer = new BodyBuffer(100, 3);
+        buffer = new BodyBuffer(100);
+
+        // a level file can be passed with --es level <path>
+        Level level = loadLevel(getIntent().getStringExtra("level"));
 
         renderThread = new RenderThread(buffer);
-        simulationThread = new SimulationThread(buffer);
+        simulationThread = new SimulationThread(buffer, level);
 
         simulationThread.start();
     }
 
+    private Level loadLevel(String path) {
+        if (path == null)
+            return null;
+
+        try {
+            InputStream in = new FileInputStream(path);
+            try {
+                return Level.read(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "could not load level " + path, e);
+            return null;
+        }
+    }
+
     @Override
     protected void onResume() {
         super.onResume();
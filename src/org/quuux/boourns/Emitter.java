@@ -0,0 +1,30 @@
+package org.quuux.boourns;
+
+// Spawns droplets at a point at a steady rate.  GameWorld asks every
+// step how many droplets are due and creates them with the emitter's
+// radius and velocity, jittered across spread.
+class Emitter {
+
+    public float x, y;
+    public float vx, vy;
+    public float spread;
+    public float radius = Liquid.BASE_RADIUS;
+
+    /** Droplets per second */
+    public float rate;
+
+    private float pending;
+
+    public Emitter(float x, float y, float rate) {
+        this.x = x;
+        this.y = y;
+        this.rate = rate;
+    }
+
+    public int due(float dt) {
+        pending += rate * dt;
+        int count = (int)pending;
+        pending -= count;
+        return count;
+    }
+}
@@ -3,11 +3,12 @@ package org.quuux.boourns;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Arrays;
+import java.util.Random;
 
 import org.jbox2d.collision.Manifold;
+import org.jbox2d.collision.WorldManifold;
 import org.jbox2d.collision.shapes.CircleShape;
 import org.jbox2d.collision.shapes.PolygonShape;
-import org.jbox2d.collision.shapes.MassData;
 import org.jbox2d.common.Vec2;
 import org.jbox2d.dynamics.Body;
 import org.jbox2d.dynamics.BodyDef;
@@ -31,12 +32,42 @@ class Liquid {
     /** A "close to zero" float epsilon value for use */
     public static final float EPSILON = 1.1920928955078125E-7f;
 
-    private float rad = 0.6f;
-    private float visc = 0.004f;
+    /** Radius of a droplet at the finest resolution */
+    public static final float BASE_RADIUS = 1f;
+
+    /** Radius of the coarsest droplet adaptive merging may produce */
+    public static final float MAX_RADIUS = 2f * BASE_RADIUS;
+
+    /** Droplets closer than this many times their radii sum are touching */
+    public static final float CONTACT_SLACK = 1.25f;
+
+    public static final float DEFAULT_RAD = 0.6f;
+    public static final float DEFAULT_VISC = 0.004f;
+
+    private float rad;
+    private float visc;
 
     private ArrayList<Integer>[][] index;
+
+    // state of the last updateIndex, used by the spatial queries
+    private ParticlePool indexed;
+    private int indexWidth, indexHeight;
+
+    // Droplets whose centers were outside the grid, such as fresh spawns
+    // above the level.  apply leaves them out, the queries scan them too.
+    private int[] outside = new int[16];
+    private int outsideCount;
+
+    // candidate droplets of the running query
+    private int[] candidates = new int[64];
     
     public Liquid() {
+        this(DEFAULT_RAD, DEFAULT_VISC);
+    }
+
+    public Liquid(float rad, float visc) {
+        this.rad = rad;
+        this.visc = visc;
 
         index = new ArrayList[SIZE][SIZE];
 
@@ -47,6 +78,22 @@ class Liquid {
         }
     }
 
+    public float getRad() {
+        return rad;
+    }
+
+    public float getVisc() {
+        return visc;
+    }
+
+    public void setRad(float rad) {
+        this.rad = rad;
+    }
+
+    public void setVisc(float visc) {
+        this.visc = visc;
+    }
+
     public final static float map(final float val, final float fromMin, final float fromMax, final float toMin,
                                   final float toMax) {
         final float mult = (val - fromMin) / (fromMax - fromMin);
@@ -58,34 +105,317 @@ class Liquid {
         return (int)map(val, fromMin, fromMax, 0, SIZE - .001f);
     }
 
-    public void updateIndex(Body[] bodies, int width, int height) {
+    public void updateIndex(ParticlePool particles, int width, int height) {
+        indexed = particles;
+        indexWidth = width;
+        indexHeight = height;
+
         for (int i = 0; i < SIZE; i++) {
             for (int j = 0; j < SIZE; j++) {
                 index[i][j].clear();
             }
         }
 
-        for(int i = 0; i < bodies.length; i++) {
-            if (bodies[i] == null) 
-                continue;
+        outsideCount = 0;
 
+        Body[] bodies = particles.getBodies();
+        for(int i = 0; i < particles.size(); i++) {
             int hcell = hash(bodies[i].m_sweep.c.x, 0, width);
             int vcell = hash(bodies[i].m_sweep.c.y, 0, height);
-            if(hcell > -1 && hcell < SIZE && vcell > -1 && vcell < SIZE)
+            if(hcell > -1 && hcell < SIZE && vcell > -1 && vcell < SIZE) {
                 index[hcell][vcell].add(new Integer(i));
+            } else {
+                if (outsideCount == outside.length)
+                    outside = Arrays.copyOf(outside, outsideCount * 2);
+                outside[outsideCount++] = i;
+            }
         }     
     }
     
-    public void dampen(Body[] bodies) {
-        for (int i=0; i<bodies.length; i++) {
+    public void dampen(ParticlePool particles) {
+        Body[] bodies = particles.getBodies();
+        for (int i=0; i<particles.size(); i++) {
+            bodies[i].setLinearVelocity(bodies[i].getLinearVelocity().mul(0.995f));
+        }
+    }
+    
+    private static float radius(Body body) {
+        return ((Float)body.getUserData()).floatValue();
+    }
+
+    /**
+     * Counts, for every droplet, the droplets touching it.  Two droplets
+     * touch when their centers are closer than CONTACT_SLACK times the
+     * sum of their radii.  Droplets with few touching neighbors sit on
+     * the free surface, droplets with many are interior.
+     */
+    public void countNeighbors(ParticlePool particles, int width, int height, int[] counts) {
+        float cellSize = Math.min((float)width, (float)height) / SIZE;
+        int span = (int)Math.ceil(2 * MAX_RADIUS * CONTACT_SLACK / cellSize);
+
+        // slots killed since the last compact are skipped
+        Body[] bodies = particles.getBodies();
+        for (int i=0; i<particles.size(); i++) {
+            counts[i] = 0;
             if (bodies[i] == null)
                 continue;
 
-            bodies[i].setLinearVelocity(bodies[i].getLinearVelocity().mul(0.995f));
+            float x = bodies[i].m_sweep.c.x;
+            float y = bodies[i].m_sweep.c.y;
+            float r = radius(bodies[i]);
+            int hcell = hash(x, 0, width);
+            int vcell = hash(y, 0, height);
+            for(int nx = -span; nx <= span; nx++) {
+                for(int ny = -span; ny <= span; ny++) {
+                    int xc = hcell + nx;
+                    int yc = vcell + ny;
+                    if(xc < 0 || xc >= SIZE || yc < 0 || yc >= SIZE)
+                        continue;
+
+                    for(int a = 0; a < index[xc][yc].size(); a++) {
+                        int j = index[xc][yc].get(a).intValue();
+                        if (j == i || bodies[j] == null)
+                            continue;
+
+                        float dx = bodies[j].m_sweep.c.x - x;
+                        float dy = bodies[j].m_sweep.c.y - y;
+                        float reach = (r + radius(bodies[j])) * CONTACT_SLACK;
+                        if (dx*dx + dy*dy < reach*reach)
+                            counts[i]++;
+                    }
+                }
+            }
         }
     }
-    
-    public void apply(Body[] bodies, int width, int height, float delta) {
+
+    /**
+     * Returns the closest droplet to droplet i that has the given radius
+     * and lies within range, or -1 if there is none.
+     */
+    public int closest(ParticlePool particles, int i, int width, int height, float range, float radius) {
+        Body[] bodies = particles.getBodies();
+        float cellSize = Math.min((float)width, (float)height) / SIZE;
+        int span = (int)Math.ceil(range / cellSize);
+
+        float x = bodies[i].m_sweep.c.x;
+        float y = bodies[i].m_sweep.c.y;
+        int hcell = hash(x, 0, width);
+        int vcell = hash(y, 0, height);
+
+        int best = -1;
+        float bestDist = range * range;
+        for(int nx = -span; nx <= span; nx++) {
+            for(int ny = -span; ny <= span; ny++) {
+                int xc = hcell + nx;
+                int yc = vcell + ny;
+                if(xc < 0 || xc >= SIZE || yc < 0 || yc >= SIZE)
+                    continue;
+
+                for(int a = 0; a < index[xc][yc].size(); a++) {
+                    int j = index[xc][yc].get(a).intValue();
+                    if (j == i || bodies[j] == null || Math.abs(radius(bodies[j]) - radius) > EPSILON)
+                        continue;
+
+                    float dx = bodies[j].m_sweep.c.x - x;
+                    float dy = bodies[j].m_sweep.c.y - y;
+                    float dist = dx*dx + dy*dy;
+                    if (dist < bestDist) {
+                        best = j;
+                        bestDist = dist;
+                    }
+                }
+            }
+        }
+
+        return best;
+    }
+
+    private int clampCell(int cell) {
+        return Math.max(0, Math.min(SIZE - 1, cell));
+    }
+
+    // Collects into candidates every indexed droplet in the cells the box
+    // overlaps plus the droplets outside the grid, returns how many
+    private int gather(float minX, float minY, float maxX, float maxY) {
+        int x0 = clampCell(hash(minX, 0, indexWidth));
+        int x1 = clampCell(hash(maxX, 0, indexWidth));
+        int y0 = clampCell(hash(minY, 0, indexHeight));
+        int y1 = clampCell(hash(maxY, 0, indexHeight));
+
+        int count = 0;
+        for (int xc = x0; xc <= x1; xc++) {
+            for (int yc = y0; yc <= y1; yc++) {
+                ArrayList<Integer> cell = index[xc][yc];
+                if (count + cell.size() > candidates.length)
+                    candidates = Arrays.copyOf(candidates, (count + cell.size()) * 2);
+                for (int a = 0; a < cell.size(); a++)
+                    candidates[count++] = cell.get(a).intValue();
+            }
+        }
+
+        if (count + outsideCount > candidates.length)
+            candidates = Arrays.copyOf(candidates, (count + outsideCount) * 2);
+        System.arraycopy(outside, 0, candidates, count, outsideCount);
+        return count + outsideCount;
+    }
+
+    /*
+     * Spatial queries over the grid built by the last updateIndex.  They
+     * fill caller provided buffers, never allocate and return the number
+     * of entries written, which is capped by the buffer length.  Droplets
+     * are reported by their position in the particle pool and droplets
+     * killed since the index was built are skipped.  Droplets anywhere
+     * are found, including those outside the grid's [0, width] x
+     * [0, height] that apply ignores.  Like the rest of Liquid they must
+     * be called from the simulation thread.
+     */
+
+    /** Collects the droplets whose centers lie within r of (x, y). */
+    public int queryRadius(float x, float y, float r, int[] out) {
+        if (indexed == null)
+            return 0;
+
+        int found = gather(x - r, y - r, x + r, y + r);
+        int count = 0;
+        for (int a = 0; a < found; a++) {
+            int j = candidates[a];
+            Body body = indexed.get(j);
+            if (body == null)
+                continue;
+
+            float dx = body.m_sweep.c.x - x;
+            float dy = body.m_sweep.c.y - y;
+            if (dx*dx + dy*dy <= r*r) {
+                if (count == out.length)
+                    return count;
+                out[count++] = j;
+            }
+        }
+
+        return count;
+    }
+
+    /** Collects the droplets whose centers lie inside the given box. */
+    public int queryAABB(float minX, float minY, float maxX, float maxY, int[] out) {
+        if (indexed == null)
+            return 0;
+
+        int found = gather(minX, minY, maxX, maxY);
+        int count = 0;
+        for (int a = 0; a < found; a++) {
+            int j = candidates[a];
+            Body body = indexed.get(j);
+            if (body == null)
+                continue;
+
+            float px = body.m_sweep.c.x;
+            float py = body.m_sweep.c.y;
+            if (px >= minX && px <= maxX && py >= minY && py <= maxY) {
+                if (count == out.length)
+                    return count;
+                out[count++] = j;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Collects up to min(k, out.length) droplets closest to (x, y) within
+     * maxRadius, nearest first.  dist2 receives the squared distances and
+     * must be at least as long as out.
+     */
+    public int queryNearest(float x, float y, float maxRadius, int k, int[] out, float[] dist2) {
+        k = Math.min(k, out.length);
+        if (indexed == null || k <= 0)
+            return 0;
+
+        int found = gather(x - maxRadius, y - maxRadius, x + maxRadius, y + maxRadius);
+        int count = 0;
+        float limit = maxRadius * maxRadius;
+        for (int a = 0; a < found; a++) {
+            int j = candidates[a];
+            Body body = indexed.get(j);
+            if (body == null)
+                continue;
+
+            float dx = body.m_sweep.c.x - x;
+            float dy = body.m_sweep.c.y - y;
+            float d = dx*dx + dy*dy;
+            if (d > limit)
+                continue;
+
+            // insertion into the sorted, bounded result
+            int slot = count < k ? count++ : k - 1;
+            while (slot > 0 && dist2[slot - 1] > d) {
+                out[slot] = out[slot - 1];
+                dist2[slot] = dist2[slot - 1];
+                slot--;
+            }
+            out[slot] = j;
+            dist2[slot] = d;
+
+            if (count == k)
+                limit = dist2[k - 1];
+        }
+
+        return count;
+    }
+
+    /**
+     * Pushes droplets within r of (x, y) away from it.  The impulse falls
+     * off linearly from the given magnitude at the center to zero at r.
+     * Returns the number of droplets pushed.
+     */
+    public int applyRadialImpulse(float x, float y, float r, float impulse) {
+        if (indexed == null || r <= 0)
+            return 0;
+
+        int found = gather(x - r, y - r, x + r, y + r);
+        int count = 0;
+        for (int a = 0; a < found; a++) {
+            Body body = indexed.get(candidates[a]);
+            if (body == null)
+                continue;
+
+            float dx = body.m_sweep.c.x - x;
+            float dy = body.m_sweep.c.y - y;
+            float d2 = dx*dx + dy*dy;
+            if (d2 > r*r || d2 < EPSILON)
+                continue;
+
+            float d = (float)Math.sqrt(d2);
+            float dv = impulse * (1.0f - d / r) * body.m_invMass / d;
+            body.m_linearVelocity.x += dx * dv;
+            body.m_linearVelocity.y += dy * dv;
+            count++;
+        }
+
+        return count;
+    }
+
+    // Scratch buffers for apply, grown with the pool and reused every step
+    private float[] xchange, ychange, xs, ys, vxs, vys, rs, ms;
+    private float[] vlen = new float[64];
+    private float[] omq = new float[64];
+
+    private final ArrayList<Integer> neighbors = new ArrayList<Integer>();
+
+    private void ensureCapacity(int capacity) {
+        if (xs != null && xs.length >= capacity)
+            return;
+
+        xchange = new float[capacity];
+        ychange = new float[capacity];
+        xs = new float[capacity];
+        ys = new float[capacity];
+        vxs = new float[capacity];
+        vys = new float[capacity];
+        rs = new float[capacity];
+        ms = new float[capacity];
+    }
+
+    public void apply(ParticlePool particles, int width, int height, float delta) {
         /*
          * Unfortunately, this simulation method is not actually scale
          * invariant, and it breaks down for rad < ~3 or so.  So we need
@@ -93,33 +423,31 @@ class Liquid {
          */
         final float idealRad = 50.0f;
         float multiplier = idealRad / rad;
+
+        Body[] bodies = particles.getBodies();
+        int count = particles.size();
+        ensureCapacity(particles.capacity());
                 
-        float[] xchange = new float[bodies.length];
-        float[] ychange = new float[bodies.length];
-        Arrays.fill(xchange,0.0f);
-        Arrays.fill(ychange, 0.0f);
-                
-        float[] xs = new float[bodies.length];
-        float[] ys = new float[bodies.length];
-        float[] vxs = new float[bodies.length];
-        float[] vys = new float[bodies.length];
-        for (int i=0; i<bodies.length; ++i) {
-            if (bodies[i] == null)
-                continue;
+        Arrays.fill(xchange, 0, count, 0.0f);
+        Arrays.fill(ychange, 0, count, 0.0f);
 
+        // Droplets of different sizes: the support of a pair grows with
+        // their mean radius, a neighbor's pressure contribution is
+        // weighted by its area and each pair's displacement is shared in
+        // inverse proportion to mass so momentum is conserved.
+        for (int i=0; i<count; ++i) {
             xs[i] = multiplier*bodies[i].m_sweep.c.x;
             ys[i] = multiplier*bodies[i].m_sweep.c.y;
             vxs[i] = multiplier*bodies[i].m_linearVelocity.x;
             vys[i] = multiplier*bodies[i].m_linearVelocity.y;
+            rs[i] = radius(bodies[i]) / BASE_RADIUS;
+            ms[i] = bodies[i].m_mass;
         }
                 
-        for(int i = 0; i < bodies.length; i++) {
-
-            if (bodies[i] == null)
-                continue;
+        for(int i = 0; i < count; i++) {
 
             // Populate the neighbor list from the 9 proximate cells
-            ArrayList<Integer> neighbors = new ArrayList<Integer>();
+            neighbors.clear();
             int hcell = hash(bodies[i].m_sweep.c.x, 0, width);
             int vcell = hash(bodies[i].m_sweep.c.y, 0, height);
             for(int nx = -1; nx < 2; nx++) {
@@ -138,27 +466,34 @@ class Liquid {
                 
             // Particle pressure calculated by particle proximity
             // Pressures = 0 iff all particles within range are idealRad distance away
-            float[] vlen = new float[neighbors.size()];
+            if (vlen.length < neighbors.size()) {
+                vlen = new float[neighbors.size() * 2];
+                omq = new float[neighbors.size() * 2];
+            }
             float p = 0.0f;
             float pnear = 0.0f;
             for(int a = 0; a < neighbors.size(); a++) {
                 Integer n = (Integer)neighbors.get(a);
                 int j = n.intValue();
+                float h = idealRad * 0.5f * (rs[i] + rs[j]);
                 float vx = xs[j]-xs[i];//bodies[j].m_sweep.c.x - bodies[i].m_sweep.c.x;
                 float vy = ys[j]-ys[i];//bodies[j].m_sweep.c.y - bodies[i].m_sweep.c.y;
                 
+                // out of range neighbors get no weight
+                omq[a] = 0.0f;
+
                 //early exit check
-                if(vx > -idealRad && vx < idealRad && vy > -idealRad && vy < idealRad) {
+                if(vx > -h && vx < h && vy > -h && vy < h) {
                     float vlensqr = (vx * vx + vy * vy);
-                    //within idealRad check
-                    if(vlensqr < idealRad*idealRad) {
+                    //within h check
+                    if(vlensqr < h*h) {
                         vlen[a] = (float)Math.sqrt(vlensqr);
-                        if (vlen[a] < EPSILON) vlen[a] = idealRad-.01f;
-                        float oneminusq = 1.0f-(vlen[a] / idealRad);
-                        p = (p + oneminusq*oneminusq);
-                        pnear = (pnear + oneminusq*oneminusq*oneminusq);
-                    } else {
-                        vlen[a] = Float.MAX_VALUE;
+                        if (vlen[a] < EPSILON) vlen[a] = h-.01f;
+                        float oneminusq = 1.0f-(vlen[a] / h);
+                        omq[a] = oneminusq;
+                        float weight = rs[j] * rs[j];
+                        p = (p + weight*oneminusq*oneminusq);
+                        pnear = (pnear + weight*oneminusq*oneminusq*oneminusq);
                     }
                 }
             }
@@ -174,27 +509,26 @@ class Liquid {
                 int j = n.intValue();
                 float vx = xs[j]-xs[i];//bodies[j].m_sweep.c.x - bodies[i].m_sweep.c.x;
                 float vy = ys[j]-ys[i];//bodies[j].m_sweep.c.y - bodies[i].m_sweep.c.y;
-                if(vx > -idealRad && vx < idealRad && vy > -idealRad && vy < idealRad) {
-                    if(vlen[a] < idealRad) {
-                        float q = vlen[a] / idealRad;
-                        float oneminusq = 1.0f-q;
-                        float factor = oneminusq * (pressure + presnear * oneminusq) / (2.0F*vlen[a]);
-                        float dx = vx * factor;
-                        float dy = vy * factor;
-                        float relvx = vxs[j] - vxs[i];
-                        float relvy = vys[j] - vys[i];
-                        factor = visc * oneminusq * delta;
-                        dx -= relvx * factor;
-                        dy -= relvy * factor;
-                        //bodies[j].m_xf.position.x += dx;//*delta*delta;
-                        //bodies[j].m_xf.position.y += dy;//*delta*delta;
-                        //bodies[j].m_linearVelocity.x += dx;///delta;//delta;
-                        //bodies[j].m_linearVelocity.y += dy;///delta;//delta;
-                        xchange[j] += dx;
-                        ychange[j] += dy;
-                        changex -= dx;
-                        changey -= dy;
-                    }
+                if(omq[a] > 0.0f) {
+                    float oneminusq = omq[a];
+                    float factor = oneminusq * (pressure + presnear * oneminusq) / (2.0F*vlen[a]);
+                    float dx = vx * factor;
+                    float dy = vy * factor;
+                    float relvx = vxs[j] - vxs[i];
+                    float relvy = vys[j] - vys[i];
+                    factor = visc * oneminusq * delta;
+                    dx -= relvx * factor;
+                    dy -= relvy * factor;
+                    //bodies[j].m_xf.position.x += dx;//*delta*delta;
+                    //bodies[j].m_xf.position.y += dy;//*delta*delta;
+                    //bodies[j].m_linearVelocity.x += dx;///delta;//delta;
+                    //bodies[j].m_linearVelocity.y += dy;///delta;//delta;
+                    // equal masses share the push evenly, as before
+                    float share = 2.0f / (ms[i] + ms[j]);
+                    xchange[j] += dx * ms[i] * share;
+                    ychange[j] += dy * ms[i] * share;
+                    changex -= dx * ms[j] * share;
+                    changey -= dy * ms[j] * share;
                 }
             }
             //bodies[i].m_xf.position.x += changex;//*delta*delta;
@@ -205,10 +539,7 @@ class Liquid {
             ychange[i] += changey;
         }
         //multiplier *= delta;
-        for (int i=0; i<bodies.length; ++i) {
-            if (bodies[i] == null)
-                continue;
-
+        for (int i=0; i<count; ++i) {
             bodies[i].m_xf.position.x += xchange[i] / multiplier;
             bodies[i].m_xf.position.y += ychange[i] / multiplier;
             bodies[i].m_linearVelocity.x += xchange[i] / (multiplier*delta);
@@ -228,17 +559,42 @@ public class GameWorld
     public static final int VEL_ITER = 3;
     public static final int POS_ITER = 8;
 
+    // Adaptive resolution: every ADAPT_INTERVAL ticks interior droplets
+    // away from edges merge pairwise into larger ones, and merged droplets
+    // that reach the surface or an edge split back into two.
+    public static final int ADAPT_INTERVAL = 10;
+    public static final int INTERIOR_NEIGHBORS = 6;
+    public static final int SURFACE_NEIGHBORS = 3;
+    public static final float EDGE_CLEARANCE = 4f;
+
     public static final float PHYSIC_STEP_SEC = (1f / PHYSIC_FRAMERATE);
     public static final int DRAWFRAME_STEP_MS = Math.round(1000.0f / DRAWFRAME_FRAMERATE);
 
-    private Body[] bodies;
+    private ParticlePool particles;
     private World world;
+    private final int initialSize;
+    private int maxParticles = Integer.MAX_VALUE;
+    private boolean respawn = true;
+
+    private final List<Emitter> emitters = new ArrayList<Emitter>();
+    private final List<Sink> sinks = new ArrayList<Sink>();
+    private int[] absorbed = new int[64];
+
+    private final long seed;
+    private final Random random;
+    private final int velIter, posIter;
 
     private int width, height;
     private float innerWidth, innerHeight;
     private float offsetWidth, offsetHeight;
 
     private Liquid liquid;
+    private int[] neighbors;
+
+    private ContactEvents contactEvents;
+    private float impactThreshold;
+    private final WorldManifold worldManifold = new WorldManifold();
+    private int ticks;
 
     // private float[][][] relativeEdges = {
     //     { { 0f, .25f   } , { .667f, .25f } },
@@ -252,13 +608,29 @@ public class GameWorld
         { { 0f, 1f   } , { .5f, .75f } }
     };
 
-    private Vec2[][] edges = new Vec2[relativeEdges.length][2];
+    private Level level;
 
     public GameWorld(int size) {
-        bodies = new Body[size];
+        this(size, System.nanoTime(), new Liquid(), VEL_ITER, POS_ITER);
+    }    
+
+    public GameWorld(int size, long seed, Liquid liquid, int velIter, int posIter) {
+        this(size, seed, liquid, velIter, posIter, null);
+    }
+
+    // Worlds built with the same seed, parameters and level evolve
+    // identically.  A null level uses the built in relativeEdges.
+    public GameWorld(int size, long seed, Liquid liquid, int velIter, int posIter, Level level) {
+        this.level = level;
+        this.initialSize = size;
         this.width = this.height = 100;
+        this.seed = seed;
+        this.random = new Random(seed);
+        this.liquid = liquid;
+        this.velIter = velIter;
+        this.posIter = posIter;
         create();
-    }    
+    }
 
     // FIXME y is reversed
     public void create() {
@@ -269,7 +641,7 @@ public class GameWorld
         world = new World(gravity, false);
         world.setContinuousPhysics(true);
         world.setWarmStarting(true);
-        //world.setContactListener(this);
+        world.setContactListener(contactEvents != null ? this : null);
              
         BodyDef bd = new BodyDef();
         bd.position.set(0.0f, 0.0f);
@@ -284,36 +656,54 @@ public class GameWorld
         Log.d(TAG, "inner = "  + innerWidth + "x" + innerHeight);
         Log.d(TAG, "offset = "  + offsetWidth + "x" + offsetHeight);
 
-        for (int i=0; i<relativeEdges.length; i++) {
-            
-            float x1 = relativeEdges[i][0][0] * innerWidth + offsetWidth;
-            float y1 = relativeEdges[i][0][1] * innerHeight + offsetHeight;
-            Vec2 a = new Vec2(x1, y1);
+        if (level == null)
+            level = createLevel();
 
-            float x2 = relativeEdges[i][1][0] * innerWidth + offsetWidth;
-            float y2 = relativeEdges[i][1][1] * innerHeight + offsetHeight;
-            Vec2 b = new Vec2(x2, y2);
+        Log.d(TAG, "level has " + level.size() + " segments");
 
-            edges[i][0] = a;
-            edges[i][1] = b;
-            
-            ground.createFixture(createEdge(a, b));
+        float[] segments = level.getSegments();
+        Vec2 a = new Vec2();
+        Vec2 b = new Vec2();
+        for (int i=0; i<level.size(); i++) {
+            a.set(segments[4 * i], segments[4 * i + 1]);
+            b.set(segments[4 * i + 2], segments[4 * i + 3]);
+
+            // edge fixtures carry their index for contact events
+            ground.createFixture(createEdge(a, b)).setUserData(Integer.valueOf(i));
         }
 
-        liquid = new Liquid();
+        particles = new ParticlePool(initialSize);
+        neighbors = new int[particles.capacity()];
 
-        for (int i=0; i<bodies.length; i++) {
-            bodies[i] = addBall(1f, 10f / bodies.length);
+        for (int i=0; i<initialSize; i++) {
+            particles.add(addBall(Liquid.BASE_RADIUS));
         }
 
      }
 
-    private Body addBall(float radius, float mass) {
+    private Level createLevel() {
+        float[] segments = new float[relativeEdges.length * 4];
+        for (int i=0; i<relativeEdges.length; i++) {
+            segments[4 * i] = relativeEdges[i][0][0] * innerWidth + offsetWidth;
+            segments[4 * i + 1] = relativeEdges[i][0][1] * innerHeight + offsetHeight;
+            segments[4 * i + 2] = relativeEdges[i][1][0] * innerWidth + offsetWidth;
+            segments[4 * i + 3] = relativeEdges[i][1][1] * innerHeight + offsetHeight;
+        }
+        return new Level(segments, relativeEdges.length);
+    }
+
+    private Body addBall(float radius) {
+        return addBall(radius,
+                       (offsetWidth + innerWidth/4) + random.nextFloat() * 4f, 
+                       height + random.nextFloat() * 4f);
+    }
+
+    // The droplet's mass follows from its radius and the fixture density
+    private Body addBall(float radius, float x, float y) {
         
         BodyDef bodyDef = new BodyDef();
         bodyDef.type = BodyType.DYNAMIC;
-        bodyDef.position.set(new Vec2((offsetWidth + innerWidth/4) + (float)Math.random() * 4f, 
-                                      height + (float)Math.random() * 4f));
+        bodyDef.position.set(x, y);
         Body body = world.createBody(bodyDef);
         
         CircleShape shape = new CircleShape();
@@ -326,11 +716,6 @@ public class GameWorld
         def.shape = shape;
         body.createFixture(def);
 
-        MassData md = new MassData();
-        md.mass = mass;
-        md.I = 1.0f;
-        body.setMassData(md);
-
         body.resetMassData();
         body.setSleepingAllowed(false);
         body.setFixedRotation(true);
@@ -357,45 +742,290 @@ public class GameWorld
     }
 
     private void checkBounds() {
-        for (int i=0; i < bodies.length; i++) {
-            if (bodies[i] == null)
-                continue;
-
+        Body[] bodies = particles.getBodies();
+        for (int i=0; i < particles.size(); i++) {
             if (bodies[i].getWorldCenter().y < -10.0f ||
                 bodies[i].getWorldCenter().x < -10.0f ||
                 bodies[i].getWorldCenter().y > (height + 10) ||
                 bodies[i].getWorldCenter().x > (width + 10) ) {
                 
+                float radius = ((Float)bodies[i].getUserData()).floatValue();
                 world.destroyBody(bodies[i]);
 
-                bodies[i] = addBall(1f, 10f / bodies.length);
+                if (respawn)
+                    particles.set(i, addBall(radius));
+                else
+                    particles.kill(i);
+            }
+        }
+    }
+
+    // Resizes a droplet in place; its mass follows from the fixture density
+    private void resize(Body body, float radius) {
+        body.getFixtureList().getShape().m_radius = radius;
+        body.resetMassData();
+        body.setUserData(Float.valueOf(radius));
+    }
+
+    private void merge(int i, int j) {
+        Body a = particles.get(i);
+        Body b = particles.get(j);
+        float ma = a.getMass();
+        float mb = b.getMass();
+        float m = ma + mb;
+
+        // center of mass and momentum of the pair carry over
+        Vec2 pa = a.getWorldCenter();
+        Vec2 pb = b.getWorldCenter();
+        Vec2 p = new Vec2((pa.x * ma + pb.x * mb) / m, (pa.y * ma + pb.y * mb) / m);
+        Vec2 va = a.getLinearVelocity();
+        Vec2 vb = b.getLinearVelocity();
+        Vec2 v = new Vec2((va.x * ma + vb.x * mb) / m, (va.y * ma + vb.y * mb) / m);
+
+        float ra = ((Float)a.getUserData()).floatValue();
+        float rb = ((Float)b.getUserData()).floatValue();
+
+        world.destroyBody(b);
+        particles.kill(j);
+
+        resize(a, (float)Math.sqrt(ra * ra + rb * rb));
+        a.setTransform(p, 0);
+        a.setLinearVelocity(v);
+    }
+
+    private void split(int i) {
+        Body a = particles.get(i);
+        float radius = ((Float)a.getUserData()).floatValue() / (float)Math.sqrt(2);
+        Vec2 p = a.getWorldCenter().clone();
+        Vec2 v = a.getLinearVelocity().clone();
+
+        // halves are placed symmetrically about the old center with the
+        // old velocity, so center of mass and momentum are unchanged
+        double angle = random.nextDouble() * Math.PI;
+        float dx = (float)Math.cos(angle) * radius;
+        float dy = (float)Math.sin(angle) * radius;
+
+        resize(a, radius);
+        a.setTransform(new Vec2(p.x + dx, p.y + dy), 0);
+        a.setLinearVelocity(v);
+
+        Body b = addBall(radius, p.x - dx, p.y - dy);
+        b.setLinearVelocity(v);
+        particles.add(b);
+    }
+
+    // Droplets added by splits are appended past count and left alone
+    private void adapt() {
+        int count = particles.size();
+        if (neighbors.length < count)
+            neighbors = new int[particles.capacity()];
+        liquid.countNeighbors(particles, width, height, neighbors);
+        SegmentGrid grid = level.getGrid();
+
+        for (int i=0; i<count; i++) {
+            Body body = particles.get(i);
+            if (body == null)
+                continue;
+
+            Vec2 c = body.getWorldCenter();
+            float radius = ((Float)body.getUserData()).floatValue();
+            float clearance = EDGE_CLEARANCE + radius;
+            boolean nearEdge = grid.distance(c.x, c.y, clearance) < clearance;
+
+            if (radius > Liquid.BASE_RADIUS + Liquid.EPSILON &&
+                (nearEdge || neighbors[i] <= SURFACE_NEIGHBORS)) {
+                split(i);
+                continue;
+            }
+
+            if (nearEdge || neighbors[i] < INTERIOR_NEIGHBORS ||
+                radius * (float)Math.sqrt(2) > Liquid.MAX_RADIUS + Liquid.EPSILON)
+                continue;
+
+            int j = liquid.closest(particles, i, width, height,
+                                   2 * radius * Liquid.CONTACT_SLACK, radius);
+            if (j < 0 || neighbors[j] < INTERIOR_NEIGHBORS)
+                continue;
+
+            Vec2 cj = particles.get(j).getWorldCenter();
+            if (grid.distance(cj.x, cj.y, clearance) < clearance)
+                continue;
+
+            merge(i, j);
+        }
+    }
+
+    private void absorb() {
+        if (absorbed.length < particles.size())
+            absorbed = new int[particles.capacity()];
+
+        for (int s=0; s<sinks.size(); s++) {
+            Sink sink = sinks.get(s);
+            int budget = sink.due(PHYSIC_STEP_SEC);
+            if (budget == 0)
+                continue;
+
+            int count = liquid.queryRadius(sink.x, sink.y, sink.radius, absorbed);
+            for (int i=0; i<count && budget > 0; i++) {
+                // already removed by checkBounds or an overlapping sink
+                Body body = particles.get(absorbed[i]);
+                if (body == null)
+                    continue;
+
+                world.destroyBody(body);
+                particles.kill(absorbed[i]);
+                budget--;
+            }
+        }
+    }
+
+    private void emit() {
+        for (int e=0; e<emitters.size(); e++) {
+            Emitter emitter = emitters.get(e);
+            int count = emitter.due(PHYSIC_STEP_SEC);
+            for (int i=0; i<count && particles.size() < maxParticles; i++) {
+                float x = emitter.x + (random.nextFloat() - .5f) * emitter.spread;
+                float y = emitter.y + (random.nextFloat() - .5f) * emitter.spread;
+                Body body = addBall(emitter.radius, x, y);
+                body.setLinearVelocity(new Vec2(emitter.vx, emitter.vy));
+                particles.add(body);
             }
         }
     }
 
     public void tick(long elapsed) {
         for (int i = 0; i < 1; i++) {
-            world.step(PHYSIC_STEP_SEC, VEL_ITER, POS_ITER);
+            // Droplets are only added and removed before the step, so the
+            // index rebuilt below matches the pool until the next tick
+            checkBounds();
+            absorb();
 
-            liquid.updateIndex(bodies, width, height);
-            liquid.apply(bodies, width, height, 1);
-            liquid.dampen(bodies);
+            if (++ticks % ADAPT_INTERVAL == 0)
+                adapt();
 
-            checkBounds();
+            emit();
+            particles.compact();
+
+            world.step(PHYSIC_STEP_SEC, velIter, posIter);
+
+            liquid.updateIndex(particles, width, height);
+            liquid.apply(particles, width, height, 1);
+            liquid.dampen(particles);
         }
     }
 
+    public void addEmitter(Emitter emitter) {
+        emitters.add(emitter);
+    }
+
+    public void removeEmitter(Emitter emitter) {
+        emitters.remove(emitter);
+    }
+
+    public void addSink(Sink sink) {
+        sinks.add(sink);
+    }
+
+    public void removeSink(Sink sink) {
+        sinks.remove(sink);
+    }
+
+    /**
+     * Whether droplets that leave the level reappear at the top, as they
+     * do by default, or are removed.
+     */
+    public void setRespawn(boolean respawn) {
+        this.respawn = respawn;
+    }
+
+    /** Emitters stop spawning while the world holds this many droplets. */
+    public void setMaxParticles(int maxParticles) {
+        this.maxParticles = maxParticles;
+    }
+
+    /** Live droplets are at [0, getBodyCount()), the rest of the array is unused. */
     public Body[] getBodies() {
-        return bodies;
+        return particles.getBodies();
+    }
+
+    public int getBodyCount() {
+        return particles.size();
+    }
+
+    public ParticlePool getParticles() {
+        return particles;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public int getVelIter() {
+        return velIter;
+    }
+
+    public int getPosIter() {
+        return posIter;
+    }
+
+    public int getWidth() {
+        return width;
     }
 
-    public Vec2[][] getEdges() {
-        return edges;
+    public int getHeight() {
+        return height;
+    }
+
+    public Liquid getLiquid() {
+        return liquid;
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    /**
+     * Records droplet-edge impacts whose normal impulse exceeds threshold
+     * into events, or stops recording when events is null.  Contacts are
+     * not reported at all unless this is enabled.
+     */
+    public void setContactEvents(ContactEvents events, float threshold) {
+        contactEvents = events;
+        impactThreshold = threshold;
+        world.setContactListener(events != null ? this : null);
     }
 
     public void beginContact(Contact contact)  {}
     public void endContact(Contact contact)  {}
-    public void postSolve(Contact contact, ContactImpulse impulse)  {}
+
+    public void postSolve(Contact contact, ContactImpulse impulse)  {
+        ContactEvents events = contactEvents;
+        if (events == null)
+            return;
+
+        Fixture edge, drop;
+        if (contact.getFixtureA().getUserData() instanceof Integer) {
+            edge = contact.getFixtureA();
+            drop = contact.getFixtureB();
+        } else if (contact.getFixtureB().getUserData() instanceof Integer) {
+            edge = contact.getFixtureB();
+            drop = contact.getFixtureA();
+        } else {
+            return;
+        }
+
+        float normal = 0;
+        for (int i=0; i<contact.getManifold().pointCount; i++)
+            normal = Math.max(normal, impulse.normalImpulses[i]);
+        if (normal < impactThreshold)
+            return;
+
+        contact.getWorldManifold(worldManifold);
+        Vec2 p = worldManifold.points[0];
+        float energy = 0.5f * normal * normal * drop.getBody().m_invMass;
+        events.record(((Integer)edge.getUserData()).intValue(), p.x, p.y, normal, energy);
+    }
+
     public void preSolve(Contact contact, Manifold oldManifold)  {}
 }
 
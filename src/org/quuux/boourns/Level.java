@@ -0,0 +1,121 @@
+package org.quuux.boourns;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+// Static level geometry: a list of line segments in world coordinates,
+// x1, y1, x2, y2 per segment, with a grid index for proximity and
+// visibility queries.
+//
+// On disk a level is its bounds followed by every endpoint quantized to
+// 16 bits within those bounds, 8 bytes a segment.
+class Level {
+
+    private static final int MAGIC = 0x424c564c; // "BLVL"
+    private static final int VERSION = 1;
+
+    private static final int QUANTA = 0xffff;
+
+    private final float[] segments;
+    private final int count;
+    private final float minX, minY, maxX, maxY;
+    private final SegmentGrid grid;
+
+    public Level(float[] segments, int count) {
+        this.segments = segments;
+        this.count = count;
+
+        float x0 = Float.MAX_VALUE, y0 = Float.MAX_VALUE;
+        float x1 = -Float.MAX_VALUE, y1 = -Float.MAX_VALUE;
+        for (int i=0; i<count * 4; i += 2) {
+            x0 = Math.min(x0, segments[i]);
+            y0 = Math.min(y0, segments[i + 1]);
+            x1 = Math.max(x1, segments[i]);
+            y1 = Math.max(y1, segments[i + 1]);
+        }
+        if (count == 0)
+            x0 = y0 = x1 = y1 = 0;
+
+        minX = x0;
+        minY = y0;
+        maxX = x1;
+        maxY = y1;
+        grid = new SegmentGrid(this);
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public float getMinX() { return minX; }
+    public float getMinY() { return minY; }
+    public float getMaxX() { return maxX; }
+    public float getMaxY() { return maxY; }
+
+    /** Backing array, segment i is at [4 * i, 4 * i + 4). */
+    public float[] getSegments() {
+        return segments;
+    }
+
+    public SegmentGrid getGrid() {
+        return grid;
+    }
+
+    public static Level read(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readInt() != MAGIC)
+            throw new IOException("not a level");
+        int version = in.readInt();
+        if (version != VERSION)
+            throw new IOException("unsupported level version " + version);
+
+        int count = in.readInt();
+        if (count < 0 || count > Integer.MAX_VALUE / 4)
+            throw new IOException("bad segment count " + count);
+
+        float minX = in.readFloat();
+        float minY = in.readFloat();
+        float maxX = in.readFloat();
+        float maxY = in.readFloat();
+        if (!(minX <= maxX && minY <= maxY) ||
+            Float.isInfinite(maxX - minX) || Float.isInfinite(maxY - minY))
+            throw new IOException("bad level bounds");
+
+        // grown as segments arrive, so a corrupt count runs into the end
+        // of the stream rather than allocating whatever it claims
+        float[] segments = new float[Math.min(count, 1024) * 4];
+        for (int i=0; i<count * 4; i += 2) {
+            if (i == segments.length)
+                segments = Arrays.copyOf(segments, (int)Math.min((long)segments.length * 2, count * 4));
+            segments[i] = minX + in.readUnsignedShort() * (maxX - minX) / QUANTA;
+            segments[i + 1] = minY + in.readUnsignedShort() * (maxY - minY) / QUANTA;
+        }
+
+        return new Level(segments, count);
+    }
+
+    public void write(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(count);
+        out.writeFloat(minX);
+        out.writeFloat(minY);
+        out.writeFloat(maxX);
+        out.writeFloat(maxY);
+
+        for (int i=0; i<count * 4; i += 2) {
+            out.writeShort(quantize(segments[i], minX, maxX));
+            out.writeShort(quantize(segments[i + 1], minY, maxY));
+        }
+        out.flush();
+    }
+
+    private static int quantize(float val, float min, float max) {
+        return max > min ? Math.round((val - min) / (max - min) * QUANTA) : 0;
+    }
+}
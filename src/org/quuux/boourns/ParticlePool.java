@@ -0,0 +1,105 @@
+package org.quuux.boourns;
+
+import java.util.Arrays;
+
+import org.jbox2d.dynamics.Body;
+
+// Dense, growable storage for the droplet bodies.  Live droplets occupy
+// bodies[0, size()) so passes over them never see an empty slot.  Each
+// droplet also gets a stable id, recycled through a free-list, that
+// survives the reordering done by compaction.
+//
+// Removal is two phase so an index built over the dense positions stays
+// usable while droplets are being removed: kill() empties a slot in
+// place and compact() later closes the holes by moving the last droplets
+// into them.
+class ParticlePool {
+
+    private Body[] bodies;
+    private int[] ids;      // dense position -> id
+    private int[] free;     // recycled ids
+    private int size, freeCount, nextId, killed;
+
+    public ParticlePool(int capacity) {
+        capacity = Math.max(1, capacity);
+        bodies = new Body[capacity];
+        ids = new int[capacity];
+        free = new int[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return bodies.length;
+    }
+
+    /** Backing array, live droplets are at [0, size()). */
+    public Body[] getBodies() {
+        return bodies;
+    }
+
+    public Body get(int i) {
+        return bodies[i];
+    }
+
+    public int getId(int i) {
+        return ids[i];
+    }
+
+    private void grow() {
+        int capacity = bodies.length * 2;
+        bodies = Arrays.copyOf(bodies, capacity);
+        ids = Arrays.copyOf(ids, capacity);
+        free = Arrays.copyOf(free, capacity);
+    }
+
+    /** Appends a droplet and returns its id. */
+    public int add(Body body) {
+        if (size == bodies.length)
+            grow();
+
+        int id = freeCount > 0 ? free[--freeCount] : nextId++;
+        bodies[size] = body;
+        ids[size] = id;
+        size++;
+        return id;
+    }
+
+    /** Replaces the droplet at i, keeping its id. */
+    public void set(int i, Body body) {
+        bodies[i] = body;
+    }
+
+    /** Empties slot i until the next compact(). */
+    public void kill(int i) {
+        if (bodies[i] == null)
+            return;
+
+        bodies[i] = null;
+        killed++;
+    }
+
+    public void compact() {
+        if (killed == 0)
+            return;
+
+        for (int i = size - 1; i >= 0; i--) {
+            if (bodies[i] != null)
+                continue;
+
+            int id = ids[i];
+            free[freeCount++] = id;
+
+            size--;
+            if (i != size) {
+                bodies[i] = bodies[size];
+                ids[i] = ids[size];
+            }
+            bodies[size] = null;
+        }
+
+        killed = 0;
+    }
+}
@@ -0,0 +1,107 @@
+package org.quuux.boourns;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+
+// Headless determinism check: records a run and replays it, start with
+//   adb shell am start -n org.quuux.boourns/.ReplayActivity --ei steps 500
+// Other extras: size, seed and interval (steps between full frames);
+// level, a level file to record on; container, true to record in the
+// batch container without respawning; log, a saved log, say one
+// recorded by another build or device, to replay instead of recording.
+// Writes files/replay.log and the report to files/replay.txt.
+public class ReplayActivity extends Activity {
+
+    protected static final String TAG = "ReplayActivity";
+
+    @Override
+    public void onCreate(Bundle savedInstanceState)
+    {
+        super.onCreate(savedInstanceState);
+
+        final Intent intent = getIntent();
+        final File dir = getFilesDir();
+
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    replay(intent, dir);
+                } catch (Exception e) {
+                    Log.e(TAG, "replay failed", e);
+                }
+                finish();
+            }
+        }, "ReplayLog").start();
+    }
+
+    private static void replay(Intent intent, File dir) throws IOException {
+        String path = intent.getStringExtra("log");
+        ReplayLog log;
+        if (path != null) {
+            InputStream in = new FileInputStream(path);
+            try {
+                log = ReplayLog.read(in);
+            } finally {
+                in.close();
+            }
+        } else {
+            log = record(intent);
+
+            File out = new File(dir, "replay.log");
+            OutputStream stream = new FileOutputStream(out);
+            try {
+                log.write(stream);
+            } finally {
+                stream.close();
+            }
+            Log.d(TAG, "recorded " + log.steps + " steps in " +
+                  log.recordNanos / 1000000 + "ms to " + out);
+        }
+
+        ReplayReport report = log.replay(new Liquid());
+        Log.d(TAG, "replay: " + report);
+
+        File out = new File(dir, "replay.txt");
+        Writer writer = new FileWriter(out);
+        try {
+            writer.write(report + "\n");
+        } finally {
+            writer.close();
+        }
+        Log.d(TAG, "wrote " + out);
+    }
+
+    private static ReplayLog record(Intent intent) throws IOException {
+        Liquid liquid = new Liquid();
+
+        Level level = null;
+        boolean respawn = true;
+        String path = intent.getStringExtra("level");
+        if (intent.getBooleanExtra("container", false)) {
+            level = BatchRunner.containerLevel();
+            respawn = false;
+        } else if (path != null) {
+            InputStream in = new FileInputStream(path);
+            try {
+                level = Level.read(in);
+            } finally {
+                in.close();
+            }
+        }
+
+        return ReplayLog.record(intent.getIntExtra("size", 100), intent.getIntExtra("seed", 1),
+                                liquid, GameWorld.VEL_ITER, GameWorld.POS_ITER, level, respawn,
+                                intent.getIntExtra("steps", 500), intent.getIntExtra("interval", 50));
+    }
+}
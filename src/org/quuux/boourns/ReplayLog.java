@@ -0,0 +1,380 @@
+package org.quuux.boourns;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.jbox2d.dynamics.Body;
+
+import android.util.Log;
+
+// Deterministic record of a GameWorld run used to check that a Liquid
+// reproduces another one, or that another build or device reproduces
+// the recording.  The log holds the world setup and seed,
+// the droplet count and a checksum of the droplet state after every step
+// and, every frameInterval steps, the full state.  Droplets are
+// identified by their ParticlePool id, so runs whose merges, splits or
+// compactions differ still compare matching droplets.
+//
+// Full frames are delta encoded: the droplet count, then each id and
+// float as a varint of its bits xor the bits at the same position in the
+// previous frame, which is small while droplets move little.
+class ReplayLog {
+
+    private static final String TAG = "ReplayLog";
+
+    private static final int MAGIC = 0x42524c47; // "BRLG"
+    private static final int VERSION = 4;
+
+    // floats per droplet in a full frame: x, y, vx, vy, radius
+    private static final int FIELDS = 5;
+
+    public final int size;
+    public final long seed;
+    public final float rad, visc;
+    public final int velIter, posIter;
+    public final int steps, frameInterval;
+
+    /** Level the run used, null for the built in one */
+    public final Level level;
+    public final boolean respawn;
+
+    /** Wall time the recording spent stepping, zero for logs read from a stream */
+    public long recordNanos;
+
+    private byte[] body;
+
+    // Droplet ids and state as raw float bits, FIELDS ints per droplet
+    private static class Frame {
+        int count;
+        int[] ids = new int[64];
+        int[] data = new int[64 * FIELDS];
+
+        // id -> position, filled by index()
+        int[] positions = new int[64];
+
+        void ensure(int count) {
+            if (ids.length < count) {
+                ids = Arrays.copyOf(ids, count * 2);
+                data = Arrays.copyOf(data, count * FIELDS * 2);
+            }
+        }
+
+        void index() {
+            int max = 0;
+            for (int i=0; i<count; i++)
+                max = Math.max(max, ids[i]);
+            if (positions.length <= max)
+                positions = new int[(max + 1) * 2];
+
+            Arrays.fill(positions, -1);
+            for (int i=0; i<count; i++)
+                positions[ids[i]] = i;
+        }
+
+        int position(int id) {
+            return id < positions.length ? positions[id] : -1;
+        }
+    }
+
+    private ReplayLog(int size, long seed, float rad, float visc, int velIter, int posIter,
+                      Level level, boolean respawn, int steps, int frameInterval) {
+        this.size = size;
+        this.seed = seed;
+        this.rad = rad;
+        this.visc = visc;
+        this.velIter = velIter;
+        this.posIter = posIter;
+        this.level = level;
+        this.respawn = respawn;
+        this.steps = steps;
+        this.frameInterval = frameInterval;
+    }
+
+    /**
+     * Runs a world with the given liquid and records it; a null level
+     * uses the built in one.  frameInterval 0 stores no frames but the
+     * initial one.
+     */
+    public static ReplayLog record(int size, long seed, Liquid liquid, int velIter, int posIter,
+                                   Level level, boolean respawn,
+                                   int steps, int frameInterval) throws IOException {
+        ReplayLog log = new ReplayLog(size, seed, liquid.getRad(), liquid.getVisc(), velIter, posIter,
+                                      level, respawn, steps, frameInterval);
+        GameWorld world = log.createWorld(liquid);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        Frame written = new Frame();
+        Frame current = new Frame();
+
+        snapshot(world, current);
+        writeFrame(out, current, written);
+
+        for (int step = 1; step <= steps; step++) {
+            long start = System.nanoTime();
+            world.tick(0);
+            log.recordNanos += System.nanoTime() - start;
+
+            snapshot(world, current);
+            writeVarint(out, current.count);
+            out.writeInt(checksum(current));
+
+            if (frameInterval > 0 && step % frameInterval == 0)
+                writeFrame(out, current, written);
+        }
+
+        out.flush();
+        log.body = bytes.toByteArray();
+        return log;
+    }
+
+    private GameWorld createWorld(Liquid liquid) {
+        GameWorld world = new GameWorld(size, seed, liquid, velIter, posIter, level);
+        world.setRespawn(respawn);
+        return world;
+    }
+
+    public void write(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(size);
+        out.writeLong(seed);
+        out.writeFloat(rad);
+        out.writeFloat(visc);
+        out.writeInt(velIter);
+        out.writeInt(posIter);
+        out.writeBoolean(respawn);
+
+        // the level exactly as simulated, Level.write would quantize it
+        out.writeInt(level != null ? level.size() : -1);
+        if (level != null) {
+            float[] segments = level.getSegments();
+            for (int i=0; i<level.size() * 4; i++)
+                out.writeFloat(segments[i]);
+        }
+
+        out.writeInt(steps);
+        out.writeInt(frameInterval);
+        out.writeInt(body.length);
+        out.write(body);
+        out.flush();
+    }
+
+    public static ReplayLog read(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readInt() != MAGIC)
+            throw new IOException("not a replay log");
+        int version = in.readInt();
+        if (version != VERSION)
+            throw new IOException("unsupported replay log version " + version);
+
+        int size = in.readInt();
+        long seed = in.readLong();
+        float rad = in.readFloat();
+        float visc = in.readFloat();
+        int velIter = in.readInt();
+        int posIter = in.readInt();
+        boolean respawn = in.readBoolean();
+
+        Level level = null;
+        int segments = in.readInt();
+        if (segments > 0x100000)
+            throw new IOException("bad segment count " + segments);
+        if (segments >= 0) {
+            float[] data = new float[segments * 4];
+            for (int i=0; i<data.length; i++)
+                data[i] = in.readFloat();
+            level = new Level(data, segments);
+        }
+
+        ReplayLog log = new ReplayLog(size, seed, rad, visc, velIter, posIter, level, respawn,
+                                      in.readInt(), in.readInt());
+        int length = in.readInt();
+        if (length < 0)
+            throw new IOException("bad body length " + length);
+        log.body = new byte[length];
+        in.readFully(log.body);
+        return log;
+    }
+
+    public int getByteSize() {
+        return body.length;
+    }
+
+    /**
+     * Re-runs the log against liquid, which is reconfigured with the
+     * logged rad and visc, and reports where the run diverged.
+     */
+    public ReplayReport replay(Liquid liquid) throws IOException {
+        liquid.setRad(rad);
+        liquid.setVisc(visc);
+        GameWorld world = createWorld(liquid);
+        ReplayReport report = new ReplayReport(steps);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        Frame recorded = new Frame();
+        Frame state = new Frame();
+
+        readFrame(in, recorded);
+        snapshot(world, state);
+        if (recorded.count != state.count)
+            report.firstCountStep = 0;
+        compare(report, 0, recorded, state, checksum(recorded) != checksum(state));
+
+        for (int step = 1; step <= steps; step++) {
+            long start = System.nanoTime();
+            world.tick(0);
+            report.nanos += System.nanoTime() - start;
+
+            snapshot(world, state);
+            if (readVarint(in) != state.count && report.firstCountStep < 0)
+                report.firstCountStep = step;
+            boolean diverged = in.readInt() != checksum(state);
+
+            if (frameInterval > 0 && step % frameInterval == 0) {
+                readFrame(in, recorded);
+                compare(report, step, recorded, state, diverged);
+            } else if (diverged && report.firstDivergentStep < 0) {
+                report.firstDivergentStep = step;
+            }
+        }
+
+        return report;
+    }
+
+    /**
+     * Replays the log against a reference and a candidate liquid and
+     * logs the divergence and throughput of both.
+     */
+    public ReplayReport[] compare(Liquid reference, Liquid candidate) throws IOException {
+        ReplayReport[] reports = { replay(reference), replay(candidate) };
+        Log.d(TAG, "reference: " + reports[0]);
+        Log.d(TAG, "candidate: " + reports[1]);
+        return reports;
+    }
+
+    // Errors over the droplets both frames hold, matched by id
+    private static void compare(ReplayReport report, int step, Frame recorded, Frame state,
+                                boolean diverged) {
+        state.index();
+
+        float pos = 0, vel = 0;
+        int matched = 0;
+        for (int i=0; i<recorded.count; i++) {
+            int j = state.position(recorded.ids[i]);
+            if (j < 0)
+                continue;
+
+            matched++;
+            int a = i * FIELDS, b = j * FIELDS;
+            pos = Math.max(pos, diff(recorded.data, a, state.data, b));
+            pos = Math.max(pos, diff(recorded.data, a + 1, state.data, b + 1));
+            vel = Math.max(vel, diff(recorded.data, a + 2, state.data, b + 2));
+            vel = Math.max(vel, diff(recorded.data, a + 3, state.data, b + 3));
+        }
+        int unmatched = recorded.count + state.count - 2 * matched;
+
+        if (diverged && report.firstDivergentStep < 0)
+            report.firstDivergentStep = step;
+        if (report.firstDivergentStep >= 0 && report.firstFrameStep < 0) {
+            report.firstFrameStep = step;
+            report.firstPositionError = pos;
+            report.firstVelocityError = vel;
+        }
+        report.maxPositionError = Math.max(report.maxPositionError, pos);
+        report.maxVelocityError = Math.max(report.maxVelocityError, vel);
+        report.maxUnmatched = Math.max(report.maxUnmatched, unmatched);
+    }
+
+    private static float diff(int[] a, int i, int[] b, int j) {
+        return Math.abs(Float.intBitsToFloat(a[i]) - Float.intBitsToFloat(b[j]));
+    }
+
+    private static void snapshot(GameWorld world, Frame frame) {
+        ParticlePool particles = world.getParticles();
+        Body[] bodies = particles.getBodies();
+        frame.count = particles.size();
+        frame.ensure(frame.count);
+
+        int[] out = frame.data;
+        for (int i=0; i<frame.count; i++) {
+            int o = i * FIELDS;
+            frame.ids[i] = particles.getId(i);
+            out[o] = Float.floatToRawIntBits(bodies[i].m_sweep.c.x);
+            out[o + 1] = Float.floatToRawIntBits(bodies[i].m_sweep.c.y);
+            out[o + 2] = Float.floatToRawIntBits(bodies[i].m_linearVelocity.x);
+            out[o + 3] = Float.floatToRawIntBits(bodies[i].m_linearVelocity.y);
+            out[o + 4] = Float.floatToRawIntBits(((Float)bodies[i].getUserData()).floatValue());
+        }
+    }
+
+    private static int checksum(Frame frame) {
+        int h = (0x811c9dc5 ^ frame.count) * 0x01000193;
+        for (int i=0; i<frame.count; i++)
+            h = (h ^ frame.ids[i]) * 0x01000193;
+        for (int i=0; i<frame.count * FIELDS; i++)
+            h = (h ^ frame.data[i]) * 0x01000193;
+        return h;
+    }
+
+    private static void writeVarint(DataOutputStream out, int v) throws IOException {
+        while ((v & ~0x7f) != 0) {
+            out.writeByte((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte(v);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int v = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            v |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return v;
+    }
+
+    // Writes current relative to the last written frame, then makes it the
+    // last; positions the last frame did not have count as zero
+    private static void writeFrame(DataOutputStream out, Frame current, Frame written) throws IOException {
+        int n = current.count;
+        written.ensure(n);
+        Arrays.fill(written.ids, written.count, Math.max(n, written.count), 0);
+        Arrays.fill(written.data, written.count * FIELDS, Math.max(n, written.count) * FIELDS, 0);
+
+        writeVarint(out, n);
+        for (int i=0; i<n; i++) {
+            writeVarint(out, current.ids[i] ^ written.ids[i]);
+            written.ids[i] = current.ids[i];
+        }
+        for (int i=0; i<n * FIELDS; i++) {
+            writeVarint(out, current.data[i] ^ written.data[i]);
+            written.data[i] = current.data[i];
+        }
+        written.count = n;
+    }
+
+    // Decodes a frame in place over the previous one
+    private static void readFrame(DataInputStream in, Frame frame) throws IOException {
+        int count = readVarint(in);
+        frame.ensure(count);
+        Arrays.fill(frame.ids, frame.count, Math.max(count, frame.count), 0);
+        Arrays.fill(frame.data, frame.count * FIELDS, Math.max(count, frame.count) * FIELDS, 0);
+
+        for (int i=0; i<count; i++)
+            frame.ids[i] ^= readVarint(in);
+        for (int i=0; i<count * FIELDS; i++)
+            frame.data[i] ^= readVarint(in);
+        frame.count = count;
+    }
+}
@@ -0,0 +1,45 @@
+package org.quuux.boourns;
+
+import java.util.Locale;
+
+// Outcome of replaying a ReplayLog.  Errors are measured over the
+// droplets both runs hold in a full frame, matched by their ids.
+class ReplayReport {
+    public final int steps;
+
+    /** First step whose checksum differed from the log, -1 if none did */
+    public int firstDivergentStep = -1;
+
+    /** First step whose droplet count differed from the log, -1 if none did */
+    public int firstCountStep = -1;
+
+    /** Errors at the first full frame at or after the divergence */
+    public int firstFrameStep = -1;
+    public float firstPositionError, firstVelocityError;
+
+    /** Largest errors over all full frames */
+    public float maxPositionError, maxVelocityError;
+
+    /** Most droplets in a full frame that only one of the runs held */
+    public int maxUnmatched;
+
+    public long nanos;
+
+    public ReplayReport(int steps) {
+        this.steps = steps;
+    }
+
+    public float getStepsPerSecond() {
+        return nanos > 0 ? steps * 1e9f / nanos : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                             "diverged at %d, count at %d, error at step %d pos=%g vel=%g, " +
+                             "max pos=%g vel=%g unmatched=%d, %.1f steps/s",
+                             firstDivergentStep, firstCountStep, firstFrameStep,
+                             firstPositionError, firstVelocityError,
+                             maxPositionError, maxVelocityError, maxUnmatched, getStepsPerSecond());
+    }
+}
@@ -0,0 +1,142 @@
+package org.quuux.boourns;
+
+// Uniform grid over a level's segments.  Each cell lists the segments
+// whose bounding box overlaps it, stored compactly as one item array with
+// per-cell offsets.  Queries allocate nothing and keep no state, so the
+// simulation and render threads can share one grid.
+class SegmentGrid {
+
+    private static final int MAX_CELLS = 1024;
+
+    private final float[] segments;
+    private final float minX, minY, cellSize;
+    private final int cols, rows;
+    private final int[] cellStart;
+    private final int[] items;
+
+    public SegmentGrid(Level level) {
+        segments = level.getSegments();
+        int count = level.size();
+
+        float w = level.getMaxX() - level.getMinX();
+        float h = level.getMaxY() - level.getMinY();
+
+        // about one segment per cell, within sane bounds
+        float size = (float)Math.sqrt(w * h / Math.max(1, count));
+        size = Math.max(size, Math.max(w, h) / MAX_CELLS);
+        cellSize = Math.max(size, 0.5f);
+
+        minX = level.getMinX();
+        minY = level.getMinY();
+        cols = (int)(w / cellSize) + 1;
+        rows = (int)(h / cellSize) + 1;
+
+        cellStart = new int[cols * rows + 1];
+        for (int s=0; s<count; s++) {
+            for (int cx = cellX(s, 0); cx <= cellX(s, 1); cx++)
+                for (int cy = cellY(s, 0); cy <= cellY(s, 1); cy++)
+                    cellStart[cy * cols + cx + 1]++;
+        }
+
+        for (int c=0; c<cols * rows; c++)
+            cellStart[c + 1] += cellStart[c];
+
+        items = new int[cellStart[cols * rows]];
+        int[] fill = new int[cols * rows];
+        for (int s=0; s<count; s++) {
+            for (int cx = cellX(s, 0); cx <= cellX(s, 1); cx++) {
+                for (int cy = cellY(s, 0); cy <= cellY(s, 1); cy++) {
+                    int c = cy * cols + cx;
+                    items[cellStart[c] + fill[c]++] = s;
+                }
+            }
+        }
+    }
+
+    private int col(float x) {
+        return Math.max(0, Math.min(cols - 1, (int)((x - minX) / cellSize)));
+    }
+
+    private int row(float y) {
+        return Math.max(0, Math.min(rows - 1, (int)((y - minY) / cellSize)));
+    }
+
+    // lowest (end 0) or highest (end 1) cell the segment's box touches
+    private int cellX(int s, int end) {
+        float a = segments[4 * s], b = segments[4 * s + 2];
+        return col(end == 0 ? Math.min(a, b) : Math.max(a, b));
+    }
+
+    private int cellY(int s, int end) {
+        float a = segments[4 * s + 1], b = segments[4 * s + 3];
+        return row(end == 0 ? Math.min(a, b) : Math.max(a, b));
+    }
+
+    /**
+     * Collects the segments whose bounding boxes overlap the given box,
+     * each once.  Returns the number written, capped by out.length.
+     */
+    public int query(float x0, float y0, float x1, float y1, int[] out) {
+        if (x1 < minX || y1 < minY || x0 > minX + cols * cellSize || y0 > minY + rows * cellSize)
+            return 0;
+
+        int c0 = col(x0), c1 = col(x1);
+        int r0 = row(y0), r1 = row(y1);
+
+        int count = 0;
+        for (int cy = r0; cy <= r1; cy++) {
+            for (int cx = c0; cx <= c1; cx++) {
+                int c = cy * cols + cx;
+                for (int i = cellStart[c]; i < cellStart[c + 1]; i++) {
+                    int s = items[i];
+
+                    // a segment spanning several cells is reported from
+                    // the first of them inside the query only
+                    if (cx != Math.max(c0, cellX(s, 0)) || cy != Math.max(r0, cellY(s, 0)))
+                        continue;
+
+                    float[] g = segments;
+                    if (Math.max(g[4*s], g[4*s+2]) < x0 || Math.min(g[4*s], g[4*s+2]) > x1 ||
+                        Math.max(g[4*s+1], g[4*s+3]) < y0 || Math.min(g[4*s+1], g[4*s+3]) > y1)
+                        continue;
+
+                    if (count == out.length)
+                        return count;
+                    out[count++] = s;
+                }
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Distance from (x, y) to the closest segment, or maxDist if no
+     * segment is closer than that.
+     */
+    public float distance(float x, float y, float maxDist) {
+        int c0 = col(x - maxDist), c1 = col(x + maxDist);
+        int r0 = row(y - maxDist), r1 = row(y + maxDist);
+
+        float best = maxDist * maxDist;
+        for (int cy = r0; cy <= r1; cy++) {
+            for (int cx = c0; cx <= c1; cx++) {
+                int c = cy * cols + cx;
+                for (int i = cellStart[c]; i < cellStart[c + 1]; i++) {
+                    int s = items[i];
+                    float ax = segments[4 * s], ay = segments[4 * s + 1];
+                    float ex = segments[4 * s + 2] - ax;
+                    float ey = segments[4 * s + 3] - ay;
+                    float len = ex * ex + ey * ey;
+                    float t = len > 0 ? ((x - ax) * ex + (y - ay) * ey) / len : 0;
+                    t = Math.max(0f, Math.min(1f, t));
+                    float dx = ax + t * ex - x;
+                    float dy = ay + t * ey - y;
+                    best = Math.min(best, dx * dx + dy * dy);
+                }
+            }
+        }
+
+        return (float)Math.sqrt(best);
+    }
+}
@@ -0,0 +1,29 @@
+package org.quuux.boourns;
+
+// Absorbs droplets whose centers come within radius of a point, at most
+// rate droplets per second, or all of them when rate is not positive.
+class Sink {
+
+    public float x, y;
+    public float radius;
+    public float rate;
+
+    private float pending;
+
+    public Sink(float x, float y, float radius, float rate) {
+        this.x = x;
+        this.y = y;
+        this.radius = radius;
+        this.rate = rate;
+    }
+
+    public int due(float dt) {
+        if (rate <= 0)
+            return Integer.MAX_VALUE;
+
+        pending += rate * dt;
+        int count = (int)pending;
+        pending -= count;
+        return count;
+    }
+}